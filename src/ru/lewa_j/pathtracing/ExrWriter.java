@@ -0,0 +1,231 @@
+package ru.lewa_j.pathtracing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+// tiled openexr, one level, float B G R channels, no or zip compression
+// tiles are written as soon as their band arrives, the offset table is filled in on Close()
+public class ExrWriter implements ImageFileWriter
+{
+	static final int NO_COMPRESSION = 0;
+	static final int ZIP_COMPRESSION = 3;
+
+	final int width;
+	final int height;
+	final int tileSize;
+	final boolean zip;
+	final int tilesX;
+	final int tilesY;
+	final long[] offsets;
+	final long tableStart;
+	final FileChannel channel;
+
+	// chunk header and pixels of one tile, direct when it goes to the file as is
+	final ByteBuffer tile;
+	Deflater deflater;
+	byte[] predicted;
+	byte[] compressed;
+	ByteBuffer chunkHeader;
+
+	public ExrWriter(File file, int w, int h, int ts, boolean compress) throws IOException
+	{
+		width = w;
+		height = h;
+		tileSize = ts;
+		zip = compress;
+		tilesX = (w+ts-1)/ts;
+		tilesY = (h+ts-1)/ts;
+		offsets = new long[tilesX*tilesY];
+
+		int tileBytes = 20 + ts*ts*12;
+		if(zip)
+		{
+			tile = ByteBuffer.allocate(tileBytes).order(ByteOrder.LITTLE_ENDIAN);
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			predicted = new byte[ts*ts*12];
+			compressed = new byte[ts*ts*12];
+			chunkHeader = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		else
+			tile = ByteBuffer.allocateDirect(tileBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+
+		ByteBuffer header = MakeHeader();
+		tableStart = header.remaining();
+		while(header.hasRemaining())
+			channel.write(header);
+		// room for the offset table
+		channel.position(tableStart + offsets.length*8L);
+	}
+
+	ByteBuffer MakeHeader()
+	{
+		ByteBuffer b = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(20000630);
+		// version 2, single part tiled
+		b.putInt(2 | 0x200);
+
+		// channels must be sorted by name
+		Attribute(b, "channels", "chlist", 3*18+1);
+		for(String c : new String[]{"B", "G", "R"})
+		{
+			Name(b, c);
+			b.putInt(2); // FLOAT
+			b.putInt(0); // pLinear + reserved
+			b.putInt(1);
+			b.putInt(1);
+		}
+		b.put((byte)0);
+
+		Attribute(b, "compression", "compression", 1);
+		b.put((byte)(zip ? ZIP_COMPRESSION : NO_COMPRESSION));
+
+		Attribute(b, "dataWindow", "box2i", 16);
+		b.putInt(0).putInt(0).putInt(width-1).putInt(height-1);
+		Attribute(b, "displayWindow", "box2i", 16);
+		b.putInt(0).putInt(0).putInt(width-1).putInt(height-1);
+
+		Attribute(b, "lineOrder", "lineOrder", 1);
+		b.put((byte)0); // INCREASING_Y
+
+		Attribute(b, "pixelAspectRatio", "float", 4);
+		b.putFloat(1f);
+		Attribute(b, "screenWindowCenter", "v2f", 8);
+		b.putFloat(0f).putFloat(0f);
+		Attribute(b, "screenWindowWidth", "float", 4);
+		b.putFloat(1f);
+
+		Attribute(b, "tiles", "tiledesc", 9);
+		b.putInt(tileSize).putInt(tileSize);
+		b.put((byte)0); // ONE_LEVEL, ROUND_DOWN
+
+		b.put((byte)0);
+		b.flip();
+		return b;
+	}
+
+	static void Attribute(ByteBuffer b, String name, String type, int size)
+	{
+		Name(b, name);
+		Name(b, type);
+		b.putInt(size);
+	}
+
+	static void Name(ByteBuffer b, String s)
+	{
+		for(int i=0;i<s.length();i++)
+			b.put((byte)s.charAt(i));
+		b.put((byte)0);
+	}
+
+	// bands have to start on a tile row and be one tile high
+	public void WriteBand(int y, int h, ByteBuffer rgba) throws IOException
+	{
+		if(y % tileSize != 0 || h != Math.min(tileSize, height-y))
+			throw new IllegalArgumentException("band "+y+"+"+h+" is not a tile row");
+
+		int ty = y/tileSize;
+		for(int tx=0;tx<tilesX;tx++)
+		{
+			int x0 = tx*tileSize;
+			int tw = Math.min(tileSize, width-x0);
+
+			tile.clear();
+			tile.position(20);
+			for(int r=0;r<h;r++)
+			{
+				// band rows come bottom to top
+				int row = ((h-1-r)*width + x0)*4;
+				for(int c=2;c>=0;c--)
+					for(int x=0;x<tw;x++)
+						tile.putFloat((rgba.get(row + x*4 + c)&0xFF)/255f);
+			}
+			int size = tile.position()-20;
+
+			offsets[ty*tilesX+tx] = channel.position();
+			if(zip)
+				WriteZipTile(tx, ty, size);
+			else
+			{
+				tile.putInt(0, tx).putInt(4, ty).putInt(8, 0).putInt(12, 0).putInt(16, size);
+				tile.flip();
+				while(tile.hasRemaining())
+					channel.write(tile);
+			}
+		}
+	}
+
+	void WriteZipTile(int tx, int ty, int size) throws IOException
+	{
+		byte[] raw = tile.array();
+
+		// split even and odd bytes, then store differences, same as the reference library
+		int t1 = 0;
+		int t2 = (size+1)/2;
+		for(int i=0;i<size;i++)
+		{
+			if((i&1)==0)
+				predicted[t1++] = raw[20+i];
+			else
+				predicted[t2++] = raw[20+i];
+		}
+		int p = predicted[0];
+		for(int i=1;i<size;i++)
+		{
+			int d = predicted[i] - p + (128 + 256);
+			p = predicted[i];
+			predicted[i] = (byte)d;
+		}
+
+		deflater.reset();
+		deflater.setInput(predicted, 0, size);
+		deflater.finish();
+		int packed = deflater.deflate(compressed, 0, size);
+
+		ByteBuffer data;
+		if(deflater.finished() && packed < size)
+			data = ByteBuffer.wrap(compressed, 0, packed);
+		else
+		{
+			// incompressible tiles are stored raw
+			packed = size;
+			data = ByteBuffer.wrap(raw, 20, size);
+		}
+
+		chunkHeader.clear();
+		chunkHeader.putInt(tx).putInt(ty).putInt(0).putInt(0).putInt(packed);
+		chunkHeader.flip();
+		while(chunkHeader.hasRemaining())
+			channel.write(chunkHeader);
+		while(data.hasRemaining())
+			channel.write(data);
+	}
+
+	public void Close() throws IOException
+	{
+		ByteBuffer table = ByteBuffer.allocate(offsets.length*8).order(ByteOrder.LITTLE_ENDIAN);
+		for(long o : offsets)
+			table.putLong(o);
+		table.flip();
+		try
+		{
+			long pos = tableStart;
+			while(table.hasRemaining())
+				pos += channel.write(table, pos);
+		}
+		finally
+		{
+			channel.close();
+			if(deflater != null)
+				deflater.end();
+		}
+	}
+}
@@ -9,6 +9,8 @@ import android.util.Log;
 import android.opengl.Matrix;
 import android.view.MotionEvent;
 import java.util.Random;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class GLESRenderer implements GLSurfaceView.Renderer
 {
@@ -185,6 +187,27 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 	"specularHighlight = pow(specularHighlight, 3.0);";
 	
 	
+	// spectral mode: upsample an rgb reflectance to 4 wavelengths at once
+	// r, g and b weights are a partition of unity, so grey stays flat
+	// saturated colours do not round trip, red (1,0.3,0.1) comes back as about (0.96,0.34,0.11)
+	// grey scenes match rgb mode up to maxSamples, past that the rgb8 accumulation drifts brighter
+	String spectralSource =
+	"vec4 reflectance(vec3 rgb, vec4 lambda)" +
+	"{" +
+	"   vec4 b = 1.0 - smoothstep(470.0, 530.0, lambda);" +
+	"   vec4 r = smoothstep(560.0, 620.0, lambda);" +
+	"   return rgb.r * r + rgb.g * (1.0 - b - r) + rgb.b * b;" +
+	"}" +
+	// project radiance at the 4 wavelengths back onto the same weights
+	// their integrals over 380-720nm are 130, 90 and 120
+	"vec3 spectrumToRgb(vec4 lambda, vec4 radiance)" +
+	"{" +
+	"   vec4 b = 1.0 - smoothstep(470.0, 530.0, lambda);" +
+	"   vec4 r = smoothstep(560.0, 620.0, lambda);" +
+	"   vec4 g = 1.0 - b - r;" +
+	"   return vec3(dot(radiance, r) / 130.0, dot(radiance, g) / 90.0, dot(radiance, b) / 120.0) * 85.0;" +
+	"}\n";
+	
 	String redGreenCornellBox =
 	"if(hit.x < -0.9999) surfaceColor = vec3(1.0, 0.3, 0.1);" + // red
 	"else if(hit.x > 0.9999) surfaceColor = vec3(0.3, 1.0, 0.1);"; // green
@@ -211,8 +234,9 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 	int sphere1Handle;
 	int[] textures = new int[2];
 	
-	int scrW;
-	int scrH;
+	// also read by the ui thread
+	volatile int scrW;
+	volatile int scrH;
 	float aspect;
 	int texSize = 256;
 	int maxSamples = 32;
@@ -227,20 +251,34 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 	float[] sphere1 = {0f,-0.75f,0f,0.25f};
 	
 	float glossines = 0.6f;
+	// trace hero wavelength bundles instead of rgb
+	boolean spectral = false;
 	
 	float[] viewMatrix;
 	float[] projectionMatrix;
 	float[] viewProjectionMatrix;
 	
-	float touchX;
-	float touchY;
-	
 	Random rand;
-	boolean resChanged = false;
+	// fixed seed makes every accumulation run produce the same picture
+	boolean fixedSeed = false;
+	long seed;
+	
+	// single slot mailbox, the ui thread publishes new params and the gl thread
+	// picks up the latest once per frame, so bursts of touch events coalesce
+	final AtomicReference<RenderParams> params =
+		new AtomicReference<RenderParams>(new RenderParams(light,texSize,fixedSeed,seed,spectral));
+	RenderParams appliedParams = params.get();
+	
+	// file to save the accumulation buffer to, taken by the gl thread
+	final AtomicReference<ImageReadback.Request> exportRequest = new AtomicReference<ImageReadback.Request>();
+	ImageReadback readback;
 
 	@Override
 	public void onSurfaceCreated(GL10 p1, EGLConfig conf)
 	{
+		// new context, new empty textures, an export in flight can't be finished
+		AbortExport();
+		
 		rand = new Random();
 		
 		viewMatrix = new float[16];
@@ -320,10 +358,85 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 		sampleCount = 0;
 	}
 	
-	public void SetResolution(int ts)
+	// fixed=false goes back to a fresh random seed per run
+	public void SetSeed(final boolean fixed, final long s)
 	{
-		texSize = ts;
-		resChanged = true;
+		RenderParams.Publish(params,new RenderParams.Update()
+		{
+			public RenderParams Apply(RenderParams p)
+			{
+				return p.WithSeed(fixed,s);
+			}
+		});
+	}
+	
+	public void SetSpectral(final boolean s)
+	{
+		RenderParams.Publish(params,new RenderParams.Update()
+		{
+			public RenderParams Apply(RenderParams p)
+			{
+				return p.WithSpectral(s);
+			}
+		});
+	}
+	
+	public void SetResolution(final int ts)
+	{
+		RenderParams.Publish(params,new RenderParams.Update()
+		{
+			public RenderParams Apply(RenderParams p)
+			{
+				return p.WithTexSize(ts);
+			}
+		});
+	}
+	
+	// .exr or .pfm
+	// check also renders the scene with ReferenceTracer and logs how far the export is from it
+	// false if an earlier request has not been picked up yet, it is kept
+	public boolean RequestExport(File f, boolean zip, boolean check)
+	{
+		return exportRequest.compareAndSet(null,new ImageReadback.Request(f,zip,check));
+	}
+	
+	// gl thread
+	public void AbortExport()
+	{
+		if(readback != null)
+		{
+			readback.Abort();
+			readback = null;
+		}
+	}
+	
+	// called on the gl thread, every new params restart accumulation
+	void ApplyParams()
+	{
+		RenderParams p = params.get();
+		if(p == appliedParams)
+			return;
+		
+		if(p.texSize != texSize)
+		{
+			texSize = p.texSize;
+			
+			glBindTexture(GL_TEXTURE_2D,textures[0]);
+			glTexImage2D(GL_TEXTURE_2D,0,GL_RGB,texSize,texSize,0,GL_RGB,GL_UNSIGNED_BYTE,null);
+		
+			glBindTexture(GL_TEXTURE_2D,textures[1]);
+			glTexImage2D(GL_TEXTURE_2D,0,GL_RGB,texSize,texSize,0,GL_RGB,GL_UNSIGNED_BYTE,null);
+		}
+		System.arraycopy(p.light,0,light,0,3);
+		fixedSeed = p.fixedSeed;
+		seed = p.seed;
+		if(p.spectral != spectral)
+		{
+			spectral = p.spectral;
+			SetObjects();
+		}
+		
+		appliedParams = p;
 		sampleCount = 0;
 	}
 
@@ -340,16 +453,9 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 	@Override
 	public void onDrawFrame(GL10 p1)
 	{
-		if(resChanged)
-		{
-			glBindTexture(GL_TEXTURE_2D,textures[0]);
-			glTexImage2D(GL_TEXTURE_2D,0,GL_RGB,texSize,texSize,0,GL_RGB,GL_UNSIGNED_BYTE,null);
-		
-			glBindTexture(GL_TEXTURE_2D,textures[1]);
-			glTexImage2D(GL_TEXTURE_2D,0,GL_RGB,texSize,texSize,0,GL_RGB,GL_UNSIGNED_BYTE,null);
-			
-			resChanged = false;
-		}
+		// keep the texture as it is while it is being read back
+		if(readback == null)
+			ApplyParams();
 		
 		eye[0]=(float)(zoomZ*Math.sin(angleY)*Math.cos(angleX));
 		eye[1]=(float)(zoomZ*Math.sin(angleX));
@@ -357,10 +463,31 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 		
 		glClear(GL_COLOR_BUFFER_BIT);
 		
-		if(sampleCount<maxSamples)
+		if(sampleCount<maxSamples && readback == null)
 			for(int i=0;i<samplePerFrame;i++)
 				RendererUpdate();
 		
+		// a request made during an export waits for it to finish
+		ImageReadback.Request export;
+		if(readback == null && (export = exportRequest.getAndSet(null)) != null)
+		{
+			ReferenceTracer reference = null;
+			if(export.check && fixedSeed)
+				reference = MakeReferenceTracer();
+			else if(export.check)
+				Log.e("ImageReadback","Reference check needs a seeded render");
+			readback = new ImageReadback(export,texSize,texSize,reference,seed,sampleCount);
+		}
+		if(readback != null)
+		{
+			glBindFramebuffer(GL_FRAMEBUFFER,framebuffer);
+			glFramebufferTexture2D(GL_FRAMEBUFFER,GL_COLOR_ATTACHMENT0,GL_TEXTURE_2D,textures[0],0);
+			if(!readback.Update())
+				readback = null;
+			glBindFramebuffer(GL_FRAMEBUFFER,0);
+			CheckGLError("Readback");
+		}
+		
 		//glViewport(0,0,Math.min(scrW,scrH),Math.min(scrW,scrH));
 		glViewport(0,0,scrW,scrH);
 		glUseProgram(renderProgram);
@@ -395,6 +522,8 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 	
 	void PTUpdate(float[] matrix)
 	{
+		if(sampleCount==0 && fixedSeed)
+			rand.setSeed(seed);
 		
 		glUseProgram(tracerProgram);
 		
@@ -412,7 +541,7 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 		glUniform3fv(rayHandles[3],1,tRay,0);
 		
 		glUniform1f(texSizeHandle,texSize);
-		glUniform1f(timeSinceStartHandle,rand.nextFloat()-0.1573f);
+		glUniform1f(timeSinceStartHandle,ReferenceTracer.PassSeed(rand));
 		glUniform1f(textureWeightHandle,(float)sampleCount/(sampleCount+1));
 		glUniform1f(glossinessHandle,glossines);
 		
@@ -469,6 +598,7 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 		cosineWeightedDirectionSource+
 		uniformlyRandomDirectionSource+
 		uniformlyRandomVectorSource+
+		(spectral ? spectralSource : "")+
 		MakeShadow()+
 		makeCalculateColor()+
 		makeMain();
@@ -476,11 +606,13 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 	
 	String makeCalculateColor()
 	{
+		// in spectral mode the 4 wavelengths share one geometric path
+		String colorType = spectral ? "vec4" : "vec3";
 		return
-			"vec3 calculateColor(vec3 origin, vec3 ray, vec3 light)" +
+			colorType + " calculateColor(vec3 origin, vec3 ray, vec3 light" + (spectral ? ", vec4 lambda)" : ")") +
 			"{" +
-			"   vec3 colorMask = vec3(1.0);" +
-			"   vec3 accumulatedColor = vec3(0.0);" +
+			"   " + colorType + " colorMask = " + colorType + "(1.0);" +
+			"   " + colorType + " accumulatedColor = " + colorType + "(0.0);" +
 
 			// main raytracing loop
 			"   for(int bounce = 0; bounce < " + bounces + "; bounce++)" +
@@ -547,7 +679,7 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 //			"     float shadowIntensity = 1.0;" +
 			
 				// do light bounce
-			"     colorMask *= surfaceColor;" +
+			"     colorMask *= " + (spectral ? "reflectance(surfaceColor, lambda);" : "surfaceColor;") +
 			//"if(bounce>0)"+
 			//"{"+
 			"     accumulatedColor += colorMask * (" + lightVal + " * diffuse * shadowIntensity);" +
@@ -583,10 +715,49 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 		"{" +
 			"vec3 newLight = light + uniformlyRandomVector(timeSinceStart - 53.0) * " + lightSize + ";" +
 			"vec3 textureCol = texture2D(texture, gl_FragCoord.xy / u_texSize).rgb;" +
-			"gl_FragColor = vec4(mix(calculateColor(eye, initialRay, newLight), textureCol, textureWeight), 1.0);" +
+			(spectral ?
+			// hero wavelength plus 3 evenly rotated ones, converted to rgb before accumulation
+			"float hero = random(vec3(27.1733, 91.4791, 45.3917), timeSinceStart - 17.0);" +
+			"vec4 lambda = 380.0 + 340.0 * fract(hero + vec4(0.0, 0.25, 0.5, 0.75));" +
+			"vec3 color = spectrumToRgb(lambda, calculateColor(eye, initialRay, newLight, lambda));"
+			:
+			"vec3 color = calculateColor(eye, initialRay, newLight);") +
+			"gl_FragColor = vec4(mix(color, textureCol, textureWeight), 1.0);" +
 		"}\n";
 	}
 	
+	// cpu copy of the current scene and camera, its renders match the shader's only statistically
+	// call from the gl thread, eye is updated in onDrawFrame
+	public ReferenceTracer MakeReferenceTracer()
+	{
+		ReferenceTracer rt = new ReferenceTracer();
+		rt.bounces = bounces;
+		rt.epsilon = epsilon;
+		rt.infinity = infinity;
+		rt.lightSize = lightSize;
+		rt.lightVal = lightVal;
+		rt.spectral = spectral;
+		rt.texSize = texSize;
+		rt.light = light.clone();
+		rt.sphere1 = sphere1.clone();
+		
+		float[] view = new float[16];
+		float[] projection = new float[16];
+		float[] viewProjection = new float[16];
+		Matrix.setLookAtM(view,0,
+						  eye[0],eye[1],eye[2],
+						  0,0,0,
+						  0,1,0);
+		Matrix.perspectiveM(projection,0,45,aspect,0.1f,100);
+		Matrix.multiplyMM(viewProjection,0,projection,0,view,0);
+		rt.eye = eye.clone();
+		rt.rays[0] = GetEyeRay(viewProjection,-1,-1);
+		rt.rays[1] = GetEyeRay(viewProjection,-1,1);
+		rt.rays[2] = GetEyeRay(viewProjection,1,-1);
+		rt.rays[3] = GetEyeRay(viewProjection,1,1);
+		return rt;
+	}
+	
 	float[] GetEyeRay(float[] matrix,float x, float y)
 	{
 		float out[]=new float[4];
@@ -635,17 +806,23 @@ public class GLESRenderer implements GLSurfaceView.Renderer
 	
 	public void onTouchEvent(MotionEvent event)
 	{
-		touchX=event.getX();
-		touchY=event.getY();
+		float touchX=event.getX();
+		float touchY=event.getY();
 		//Log.e("Input","x "+touchX+" y "+touchY);
 		
-		light[0]=(touchX/scrW)*2f-1f;
-		light[1]=1f-(touchY/scrH)*2f;
+		final float lx=(touchX/scrW)*2f-1f;
+		final float ly=1f-(touchY/scrH)*2f;
 		//sphere1[0]=(touchX/scrW)*2f-1f;
 		//sphere1[1]=1f-(touchY/scrH)*2f;
 		//angleY=(touchX/scrW)*6-3f;
 		//angleX=3f-(touchY/scrH)*6f;
 		
-		sampleCount=0;
+		RenderParams.Publish(params,new RenderParams.Update()
+		{
+			public RenderParams Apply(RenderParams p)
+			{
+				return p.WithLight(lx,ly);
+			}
+		});
 	}
 }
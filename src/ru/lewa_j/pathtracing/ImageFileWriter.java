@@ -0,0 +1,14 @@
+package ru.lewa_j.pathtracing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// destination for the accumulation buffer, filled band by band as readback goes
+public interface ImageFileWriter
+{
+	// rows y..y+h-1 counted from the top of the image,
+	// rgba is glReadPixels output: 4 bytes per pixel, rows from bottom to top
+	void WriteBand(int y, int h, ByteBuffer rgba) throws IOException;
+
+	void Close() throws IOException;
+}
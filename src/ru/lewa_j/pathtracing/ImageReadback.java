@@ -0,0 +1,196 @@
+package ru.lewa_j.pathtracing;
+
+import static android.opengl.GLES20.*;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// reads the accumulation texture back one band per frame into two direct buffers
+// and hands them to a writer thread, so the gl thread never waits for the disk
+public class ImageReadback implements Runnable
+{
+	// band height, also the exr tile size
+	static final int BAND = 64;
+
+	static class Band
+	{
+		int y;
+		int h;
+		ByteBuffer pixels;
+	}
+
+	// file and format the ui thread asked for
+	static class Request
+	{
+		final File file;
+		final boolean zip;
+		final boolean check;
+
+		Request(File f, boolean z, boolean c)
+		{
+			file = f;
+			zip = z;
+			check = c;
+		}
+	}
+
+	final File file;
+	final boolean zip;
+	final int width;
+	final int height;
+	final ArrayBlockingQueue<Band> free = new ArrayBlockingQueue<Band>(2);
+	final ArrayBlockingQueue<Band> filled = new ArrayBlockingQueue<Band>(2);
+	// next band to read, counted from the top
+	int nextY = 0;
+	volatile boolean failed = false;
+	final Thread thread;
+
+	// optional check of the export against the java port of the shader
+	final ReferenceTracer reference;
+	final long referenceSeed;
+	final int referenceSamples;
+	float[] image;
+
+	public ImageReadback(Request r, int w, int h)
+	{
+		this(r, w, h, null, 0, 0);
+	}
+
+	// reference has to be set up for the same scene, seed and sample count as the texture
+	public ImageReadback(Request r, int w, int h, ReferenceTracer ref, long seed, int samples)
+	{
+		file = r.file;
+		zip = r.zip;
+		width = w;
+		height = h;
+		reference = ref;
+		referenceSeed = seed;
+		referenceSamples = samples;
+		if(ref != null)
+			image = new float[w*h*3];
+		for(int i=0;i<2;i++)
+		{
+			Band b = new Band();
+			b.pixels = ByteBuffer.allocateDirect(w*BAND*4).order(ByteOrder.nativeOrder());
+			free.add(b);
+		}
+		thread = new Thread(this, "ImageReadback");
+		// an export left behind by a paused activity must not keep the process alive
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// the texture is gone (context lost), stop reading and drop the partial file
+	public void Abort()
+	{
+		failed = true;
+		thread.interrupt();
+	}
+
+	// gl thread, with the accumulation texture bound to the current framebuffer
+	// returns false once every band has been read
+	public boolean Update()
+	{
+		if(failed)
+			return false;
+
+		Band b = free.poll();
+		// writer still busy with both buffers, try again next frame
+		if(b == null)
+			return true;
+
+		b.y = nextY;
+		b.h = Math.min(BAND, height-nextY);
+		b.pixels.clear();
+		glReadPixels(0, height-b.y-b.h, width, b.h, GL_RGBA, GL_UNSIGNED_BYTE, b.pixels);
+		filled.add(b);
+
+		nextY += b.h;
+		return nextY < height;
+	}
+
+	// .pfm or exr, zip only applies to exr
+	ImageFileWriter OpenWriter() throws IOException
+	{
+		if(file.getName().endsWith(".pfm"))
+			return new PfmWriter(file, width, height);
+		return new ExrWriter(file, width, height, BAND, zip);
+	}
+
+	// into ReferenceTracer's layout, rgb floats with rows from the bottom
+	void CopyBand(Band b)
+	{
+		int o = (height-b.y-b.h)*width*3;
+		for(int i=0;i<width*b.h*4;i+=4)
+		{
+			image[o++] = (b.pixels.get(i)&0xFF)/255f;
+			image[o++] = (b.pixels.get(i+1)&0xFF)/255f;
+			image[o++] = (b.pixels.get(i+2)&0xFF)/255f;
+		}
+	}
+
+	// per-pixel noise differs between java and the gpu, so only rmse and mean are meaningful
+	// seed to seed rmse at 32 spp is about 0.037, a changed kernel shows up well above that
+	void CompareWithReference()
+	{
+		float[] expected = reference.Render(referenceSeed, referenceSamples);
+		Log.e("ImageReadback","Reference check "+width+"x"+height+" "+referenceSamples+" spp:"+
+			" rmse "+ReferenceTracer.Rmse(expected, image)+
+			" mean "+ReferenceTracer.Mean(image)+" reference mean "+ReferenceTracer.Mean(expected));
+	}
+
+	public void run()
+	{
+		ImageFileWriter writer = null;
+		boolean saved = false;
+		try
+		{
+			long start = System.currentTimeMillis();
+			writer = OpenWriter();
+			for(int y=0;y<height;)
+			{
+				Band b = filled.take();
+				writer.WriteBand(b.y, b.h, b.pixels);
+				if(image != null)
+					CopyBand(b);
+				y += b.h;
+				free.add(b);
+			}
+			writer.Close();
+			writer = null;
+			saved = true;
+			Log.e("ImageReadback","Saved "+file+" in "+(System.currentTimeMillis()-start)+" ms");
+			if(reference != null)
+				CompareWithReference();
+		}
+		catch(InterruptedException e)
+		{
+			Log.e("ImageReadback","Aborted "+file);
+		}
+		catch(Exception e)
+		{
+			Log.e("ImageReadback","Failed to save "+file+": "+e);
+		}
+		finally
+		{
+			if(!saved)
+			{
+				failed = true;
+				if(writer != null)
+				{
+					try
+					{
+						writer.Close();
+					}
+					catch(IOException e)
+					{
+					}
+				}
+				file.delete();
+			}
+		}
+	}
+}
@@ -5,6 +5,7 @@ import android.os.*;
 import android.view.*;
 import android.widget.*;
 import android.opengl.GLSurfaceView;
+import java.io.File;
 
 public class MainActivity extends Activity
 {
@@ -76,14 +77,52 @@ public class MainActivity extends Activity
 				Toast.makeText(this,"res_512",Toast.LENGTH_SHORT).show();
 				glRenderer.SetResolution(512);
 				break;
+			case R.id.spectral:
+				item.setChecked(!item.isChecked());
+				glRenderer.SetSpectral(item.isChecked());
+				return true;
+			case R.id.seeded:
+				// restarts accumulation, with the same passes every time while checked
+				item.setChecked(!item.isChecked());
+				glRenderer.SetSeed(item.isChecked(),1);
+				return true;
+			case R.id.check_reference:
+				Export(".pfm",false,true);
+				return true;
+			case R.id.save_exr_zip:
+				Export(".exr",true,false);
+				return true;
+			case R.id.save_exr:
+				Export(".exr",false,false);
+				return true;
+			case R.id.save_pfm:
+				Export(".pfm",false,false);
+				return true;
 		}
 		item.setChecked(true);
 		return super.onOptionsItemSelected(item);
 	}
 
+	void Export(String ext, boolean zip, boolean check)
+	{
+		File file=new File(getExternalFilesDir(null),"pathtracing_"+System.currentTimeMillis()+ext);
+		if(glRenderer.RequestExport(file,zip,check))
+			Toast.makeText(this,file.getPath(),Toast.LENGTH_SHORT).show();
+		else
+			Toast.makeText(this,"export already pending",Toast.LENGTH_SHORT).show();
+	}
+
 	@Override
 	protected void onPause()
 	{
+		// the context may not survive the pause, runs on the gl thread before it stops
+		glView.queueEvent(new Runnable()
+		{
+			public void run()
+			{
+				glRenderer.AbortExport();
+			}
+		});
 		glView.onPause();
 		super.onPause();
 	}
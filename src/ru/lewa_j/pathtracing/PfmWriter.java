@@ -0,0 +1,58 @@
+package ru.lewa_j.pathtracing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// portable float map, rgb floats with rows stored from bottom to top like gl,
+// so every band goes straight to its place in the file
+public class PfmWriter implements ImageFileWriter
+{
+	final int width;
+	final int height;
+	final FileChannel channel;
+	final long dataStart;
+	ByteBuffer rows;
+
+	public PfmWriter(File file, int w, int h) throws IOException
+	{
+		width = w;
+		height = h;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+
+		// negative scale means little endian
+		ByteBuffer header = ByteBuffer.wrap(("PF\n" + w + " " + h + "\n-1.0\n").getBytes("US-ASCII"));
+		dataStart = header.remaining();
+		while(header.hasRemaining())
+			channel.write(header);
+	}
+
+	public void WriteBand(int y, int h, ByteBuffer rgba) throws IOException
+	{
+		int size = width*h*12;
+		if(rows == null || rows.capacity() < size)
+			rows = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+		rows.clear();
+		for(int i=0;i<width*h*4;i+=4)
+		{
+			rows.putFloat((rgba.get(i)&0xFF)/255f);
+			rows.putFloat((rgba.get(i+1)&0xFF)/255f);
+			rows.putFloat((rgba.get(i+2)&0xFF)/255f);
+		}
+		rows.flip();
+
+		long pos = dataStart + (long)(height-y-h)*width*12;
+		while(rows.hasRemaining())
+			pos += channel.write(rows, pos);
+	}
+
+	public void Close() throws IOException
+	{
+		channel.close();
+	}
+}
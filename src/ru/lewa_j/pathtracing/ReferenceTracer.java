@@ -0,0 +1,381 @@
+package ru.lewa_j.pathtracing;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// java port of the shader built by GLESRenderer.makeTracerFragmentSource()
+// same kernel and same pass seeds, but the sin() hash in random() is not bit exact
+// between java and the gpu, so per-pixel noise differs and images only agree statistically
+public class ReferenceTracer
+{
+	int bounces = 4;
+	float epsilon = 0.0001f;
+	float infinity = 10000.0f;
+	float lightSize = 0.2f;
+	float lightVal = 0.5f;
+
+	int texSize = 256;
+	float[] eye = {0f,0f,0f};
+	float[][] rays = new float[4][];
+	float[] light = {0.4f,0.5f,-0.6f};
+	float[] sphere1 = {0f,-0.75f,0f,0.25f};
+	float[] leftWall = {1.0f,0.3f,0.1f};
+	float[] rightWall = {0.3f,1.0f,0.1f};
+
+	// trace 4 wavelengths per path like the spectral shader
+	boolean spectral = false;
+
+	// the accumulation texture is GL_RGB/GL_UNSIGNED_BYTE, so each pass is rounded to 8 bit
+	boolean quantize = true;
+
+	// pixel of the fragment being shaded, gl_FragCoord.xyz
+	float fragX;
+	float fragY;
+	float fragZ = 0.5f;
+
+	// rgb, rows from bottom to top like the gl texture
+	public float[] Render(long seed, int samples)
+	{
+		float[] image = new float[texSize*texSize*3];
+		Random rand = new Random(seed);
+		for(int s=0;s<samples;s++)
+			Pass(image, PassSeed(rand), (float)s/(s+1));
+		return image;
+	}
+
+	// timeSinceStart of the next pass, shared with GLESRenderer
+	static float PassSeed(Random r)
+	{
+		return r.nextFloat()-0.1573f;
+	}
+
+	// stock camera of GLESRenderer: looking at the origin from eye, 45 degrees vertical fov
+	// corner rays are only defined up to a common scale, which the tracer does not care about
+	public void SetCamera(float[] e, float aspect)
+	{
+		eye = e.clone();
+		float[] f = Normalize(Scale(eye, -1f));
+		float[] side = Normalize(Cross(f, new float[]{0f,1f,0f}));
+		float[] up = Cross(side, f);
+		float ty = (float)Math.tan(Math.toRadians(22.5));
+		float tx = ty*aspect;
+		for(int i=0;i<4;i++)
+		{
+			// ray00, ray01, ray10, ray11
+			float x = (i&2)!=0 ? tx : -tx;
+			float y = (i&1)!=0 ? ty : -ty;
+			rays[i] = Add(f, Add(Scale(side, x), Scale(up, y)));
+		}
+	}
+
+	void Pass(float[] image, float timeSinceStart, float textureWeight)
+	{
+		float[] ray = new float[3];
+		float[] newLight = new float[3];
+		for(int y=0;y<texSize;y++)
+		{
+			for(int x=0;x<texSize;x++)
+			{
+				fragX = x+0.5f;
+				fragY = y+0.5f;
+				InitialRay(fragX/texSize, fragY/texSize, ray);
+
+				float[] r = UniformlyRandomVector(timeSinceStart - 53.0f);
+				for(int i=0;i<3;i++)
+					newLight[i] = light[i] + r[i]*lightSize;
+
+				float[] col;
+				if(spectral)
+				{
+					float hero = Random(27.1733f, 91.4791f, 45.3917f, timeSinceStart - 17.0f);
+					float[] lambda = new float[4];
+					for(int i=0;i<4;i++)
+						lambda[i] = 380f + 340f*Fract(hero + i*0.25f);
+					col = SpectrumToRgb(lambda, CalculateColor(eye.clone(), ray.clone(), newLight, timeSinceStart, lambda));
+				}
+				else
+					col = CalculateColor(eye.clone(), ray.clone(), newLight, timeSinceStart, null);
+				int o = (y*texSize+x)*3;
+				for(int i=0;i<3;i++)
+				{
+					float v = Mix(col[i], image[o+i], textureWeight);
+					image[o+i] = quantize ? Quantize(v) : v;
+				}
+			}
+		}
+	}
+
+	void InitialRay(float px, float py, float[] out)
+	{
+		for(int i=0;i<3;i++)
+			out[i] = Mix(Mix(rays[0][i], rays[1][i], py), Mix(rays[2][i], rays[3][i], py), px);
+	}
+
+	// rgb when lambda is null, otherwise radiance at each of the lambda wavelengths
+	float[] CalculateColor(float[] origin, float[] ray, float[] light, float timeSinceStart, float[] lambda)
+	{
+		int n = lambda == null ? 3 : lambda.length;
+		float[] colorMask = new float[n];
+		float[] accumulatedColor = new float[n];
+		Arrays.fill(colorMask, 1f);
+
+		for(int bounce = 0; bounce < bounces; bounce++)
+		{
+			float[] tRoom = IntersectCube(origin, ray);
+			float tSphere1 = IntersectSphere(origin, ray, sphere1);
+
+			float t = infinity;
+			if(tRoom[0] < tRoom[1]) t = tRoom[1];
+			if(tSphere1 < t) t = tSphere1;
+
+			float[] hit = Add(origin, Scale(ray, t));
+			float[] surfaceColor = {0.75f,0.75f,0.75f};
+			float specularHighlight = 0f;
+			float[] normal;
+
+			if(t == tRoom[1])
+			{
+				normal = Scale(NormalForCube(hit), -1f);
+				if(hit[0] < -0.9999f) surfaceColor = leftWall;
+				else if(hit[0] > 0.9999f) surfaceColor = rightWall;
+				ray = CosineWeightedDirection(timeSinceStart + bounce, normal);
+			}
+			else if(t == infinity)
+			{
+				break;
+			}
+			else
+			{
+				normal = NormalForSphere(hit, sphere1);
+				ray = Reflect(ray, normal);
+				float[] reflectedLight = Normalize(Reflect(Sub(light, hit), normal));
+				specularHighlight = Math.max(0f, Dot(reflectedLight, Normalize(Sub(hit, origin))));
+				specularHighlight = 2.0f * (float)Math.pow(specularHighlight, 20.0);
+			}
+
+			float[] toLight = Sub(light, hit);
+			float diffuse = Math.max(0f, Dot(Normalize(toLight), normal));
+			float shadowIntensity = Shadow(Add(hit, Scale(normal, epsilon)), toLight);
+
+			float[] mask = lambda == null ? surfaceColor : Reflectance(surfaceColor, lambda);
+			for(int i=0;i<n;i++)
+			{
+				colorMask[i] *= mask[i];
+				accumulatedColor[i] += colorMask[i] * (lightVal * diffuse * shadowIntensity);
+				accumulatedColor[i] += colorMask[i] * specularHighlight * shadowIntensity;
+			}
+
+			origin = hit;
+		}
+
+		return accumulatedColor;
+	}
+
+	float Shadow(float[] origin, float[] ray)
+	{
+		float tSphere1 = IntersectSphere(origin, ray, sphere1);
+		if(tSphere1 < 1.0f) return 0f;
+		return 1f;
+	}
+
+	float[] IntersectCube(float[] origin, float[] ray)
+	{
+		float tNear = -Float.MAX_VALUE;
+		float tFar = Float.MAX_VALUE;
+		for(int i=0;i<3;i++)
+		{
+			float tMin = (-1f - origin[i]) / ray[i];
+			float tMax = (1f - origin[i]) / ray[i];
+			tNear = Math.max(tNear, Math.min(tMin, tMax));
+			tFar = Math.min(tFar, Math.max(tMin, tMax));
+		}
+		return new float[]{tNear, tFar};
+	}
+
+	float[] NormalForCube(float[] hit)
+	{
+		if(hit[0] < -1f + epsilon) return new float[]{-1f, 0f, 0f};
+		else if(hit[0] > 1f - epsilon) return new float[]{1f, 0f, 0f};
+		else if(hit[1] < -1f + epsilon) return new float[]{0f, -1f, 0f};
+		else if(hit[1] > 1f - epsilon) return new float[]{0f, 1f, 0f};
+		else if(hit[2] < -1f + epsilon) return new float[]{0f, 0f, -1f};
+		else return new float[]{0f, 0f, 1f};
+	}
+
+	float IntersectSphere(float[] origin, float[] ray, float[] sphereCenter)
+	{
+		float[] toSphere = {origin[0]-sphereCenter[0], origin[1]-sphereCenter[1], origin[2]-sphereCenter[2]};
+		float a = Dot(ray, ray);
+		float b = 2.0f * Dot(toSphere, ray);
+		float c = Dot(toSphere, toSphere) - sphereCenter[3]*sphereCenter[3];
+		float discriminant = b*b - 4.0f*a*c;
+		if(discriminant > 0f)
+		{
+			float t = (-b - (float)Math.sqrt(discriminant)) / (2.0f * a);
+			if(t > 0f) return t;
+		}
+		return infinity;
+	}
+
+	float[] NormalForSphere(float[] hit, float[] sphereCenter)
+	{
+		return new float[]{
+			(hit[0]-sphereCenter[0])/sphereCenter[3],
+			(hit[1]-sphereCenter[1])/sphereCenter[3],
+			(hit[2]-sphereCenter[2])/sphereCenter[3]};
+	}
+
+	// d gets up to ~2e4, where double Math.sin and the gpu's float sin() already disagree
+	float Random(float sx, float sy, float sz, float seed)
+	{
+		float d = (fragX + seed)*sx + (fragY + seed)*sy + (fragZ + seed)*sz;
+		return Fract((float)Math.sin(d) * 43758.5453f + seed);
+	}
+
+	float[] CosineWeightedDirection(float seed, float[] normal)
+	{
+		float u = Random(12.9898f, 78.233f, 151.7182f, seed);
+		float v = Random(63.7264f, 10.873f, 623.6736f, seed);
+		float r = (float)Math.sqrt(u);
+		float angle = 6.283185307179586f * v;
+		float[] sdir;
+		if(Math.abs(normal[0]) < .5f)
+			sdir = Cross(normal, new float[]{1f,0f,0f});
+		else
+			sdir = Cross(normal, new float[]{0f,1f,0f});
+		float[] tdir = Cross(normal, sdir);
+		float c = r*(float)Math.cos(angle);
+		float s = r*(float)Math.sin(angle);
+		float n = (float)Math.sqrt(1f-u);
+		return new float[]{
+			c*sdir[0] + s*tdir[0] + n*normal[0],
+			c*sdir[1] + s*tdir[1] + n*normal[1],
+			c*sdir[2] + s*tdir[2] + n*normal[2]};
+	}
+
+	float[] UniformlyRandomDirection(float seed)
+	{
+		float u = Random(12.9898f, 78.233f, 151.7182f, seed);
+		float v = Random(63.7264f, 10.873f, 623.6736f, seed);
+		float z = 1.0f - 2.0f * u;
+		float r = (float)Math.sqrt(1.0f - z * z);
+		float angle = 6.283185307179586f * v;
+		return new float[]{r * (float)Math.cos(angle), r * (float)Math.sin(angle), z};
+	}
+
+	float[] UniformlyRandomVector(float seed)
+	{
+		return Scale(UniformlyRandomDirection(seed), (float)Math.sqrt(Random(36.7539f, 50.3658f, 306.2759f, seed)));
+	}
+
+	static float Smoothstep(float e0, float e1, float x)
+	{
+		float t = Math.min(Math.max((x - e0) / (e1 - e0), 0f), 1f);
+		return t * t * (3f - 2f * t);
+	}
+
+	// same weights as spectralSource, exact for grey only
+	static float[] Reflectance(float[] rgb, float[] lambda)
+	{
+		float[] out = new float[lambda.length];
+		for(int i=0;i<lambda.length;i++)
+		{
+			float b = 1f - Smoothstep(470f, 530f, lambda[i]);
+			float r = Smoothstep(560f, 620f, lambda[i]);
+			out[i] = rgb[0]*r + rgb[1]*(1f - b - r) + rgb[2]*b;
+		}
+		return out;
+	}
+
+	static float[] SpectrumToRgb(float[] lambda, float[] radiance)
+	{
+		float[] out = new float[3];
+		for(int i=0;i<lambda.length;i++)
+		{
+			float b = 1f - Smoothstep(470f, 530f, lambda[i]);
+			float r = Smoothstep(560f, 620f, lambda[i]);
+			out[0] += radiance[i]*r;
+			out[1] += radiance[i]*(1f - b - r);
+			out[2] += radiance[i]*b;
+		}
+		float s = 340f / lambda.length;
+		out[0] *= s / 130f;
+		out[1] *= s / 90f;
+		out[2] *= s / 120f;
+		return out;
+	}
+
+	public static float Mean(float[] a)
+	{
+		double sum = 0;
+		for(float v : a)
+			sum += v;
+		return (float)(sum/a.length);
+	}
+
+	// root mean square error between two images of the same size
+	public static float Rmse(float[] a, float[] b)
+	{
+		double sum = 0;
+		for(int i=0;i<a.length;i++)
+		{
+			double d = a[i]-b[i];
+			sum += d*d;
+		}
+		return (float)Math.sqrt(sum/a.length);
+	}
+
+	static float Quantize(float v)
+	{
+		return Math.round(Math.min(Math.max(v, 0f), 1f)*255f)/255f;
+	}
+
+	static float Fract(float v)
+	{
+		return v - (float)Math.floor(v);
+	}
+
+	static float Mix(float a, float b, float t)
+	{
+		return a*(1f-t) + b*t;
+	}
+
+	static float Dot(float[] a, float[] b)
+	{
+		return a[0]*b[0] + a[1]*b[1] + a[2]*b[2];
+	}
+
+	static float[] Add(float[] a, float[] b)
+	{
+		return new float[]{a[0]+b[0], a[1]+b[1], a[2]+b[2]};
+	}
+
+	static float[] Sub(float[] a, float[] b)
+	{
+		return new float[]{a[0]-b[0], a[1]-b[1], a[2]-b[2]};
+	}
+
+	static float[] Scale(float[] a, float s)
+	{
+		return new float[]{a[0]*s, a[1]*s, a[2]*s};
+	}
+
+	static float[] Cross(float[] a, float[] b)
+	{
+		return new float[]{
+			a[1]*b[2] - a[2]*b[1],
+			a[2]*b[0] - a[0]*b[2],
+			a[0]*b[1] - a[1]*b[0]};
+	}
+
+	static float[] Normalize(float[] a)
+	{
+		float l = (float)Math.sqrt(Dot(a, a));
+		return Scale(a, 1f/l);
+	}
+
+	static float[] Reflect(float[] i, float[] n)
+	{
+		return Sub(i, Scale(n, 2f*Dot(n, i)));
+	}
+}
@@ -0,0 +1,63 @@
+package ru.lewa_j.pathtracing;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// immutable set of parameters the ui thread hands to the gl thread
+// every change makes a new instance, so a published one is never modified
+public final class RenderParams
+{
+	final float[] light;
+	final int texSize;
+	final boolean fixedSeed;
+	final long seed;
+	final boolean spectral;
+
+	// builds the next params from the latest published ones, may run more than once
+	interface Update
+	{
+		RenderParams Apply(RenderParams p);
+	}
+
+	RenderParams(float[] light, int texSize, boolean fixedSeed, long seed, boolean spectral)
+	{
+		this.light = light.clone();
+		this.texSize = texSize;
+		this.fixedSeed = fixedSeed;
+		this.seed = seed;
+		this.spectral = spectral;
+	}
+
+	// lock-free publish into the single slot mailbox, retries when another writer got in first
+	static RenderParams Publish(AtomicReference<RenderParams> slot, Update u)
+	{
+		RenderParams p;
+		RenderParams next;
+		do
+		{
+			p = slot.get();
+			next = u.Apply(p);
+		}
+		while(!slot.compareAndSet(p, next));
+		return next;
+	}
+
+	RenderParams WithLight(float x, float y)
+	{
+		return new RenderParams(new float[]{x, y, light[2]}, texSize, fixedSeed, seed, spectral);
+	}
+
+	RenderParams WithTexSize(int ts)
+	{
+		return new RenderParams(light, ts, fixedSeed, seed, spectral);
+	}
+
+	RenderParams WithSeed(boolean fixed, long s)
+	{
+		return new RenderParams(light, texSize, fixed, s, spectral);
+	}
+
+	RenderParams WithSpectral(boolean s)
+	{
+		return new RenderParams(light, texSize, fixedSeed, seed, s);
+	}
+}
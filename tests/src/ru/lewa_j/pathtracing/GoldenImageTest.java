@@ -0,0 +1,103 @@
+package ru.lewa_j.pathtracing;
+
+import static org.junit.Assert.*;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+// stock cornell box at fixed seed and spp against a checked in reference image
+// the path tracer is noisy and the hash is not bit exact across platforms,
+// so renders are compared by rmse and mean within the seed to seed noise
+// this tests ReferenceTracer, not the shader: a change to the glsl kernel in GLESRenderer
+// has to be mirrored into ReferenceTracer by hand before this test says anything about it
+public class GoldenImageTest
+{
+	static final int SIZE = 64;
+	static final int SAMPLES = 32;
+	static final long GOLDEN_SEED = 1;
+	static final File GOLDEN = new File(System.getProperty("golden.dir", "tests/golden"), "cornell_64_32spp.pfm");
+
+	// seed to seed rmse at 64x64/32spp is about 0.037, 3 or 5 bounces give 0.06+
+	static final float MAX_RMSE = 0.045f;
+	static final float MAX_MEAN_DIFF = 0.003f;
+
+	static ReferenceTracer MakeTracer()
+	{
+		ReferenceTracer rt = new ReferenceTracer();
+		rt.texSize = SIZE;
+		rt.SetCamera(new float[]{0f,0f,2.5f}, 1f);
+		return rt;
+	}
+
+	@Test
+	public void SameSeedSameImage()
+	{
+		assertArrayEquals("seeded renders differ", MakeTracer().Render(7, 4), MakeTracer().Render(7, 4), 0f);
+	}
+
+	@Test
+	public void MatchesGolden() throws IOException
+	{
+		float[] golden = ReadPfm(GOLDEN);
+		for(long seed=2;seed<5;seed++)
+		{
+			float[] image = MakeTracer().Render(seed, SAMPLES);
+			float rmse = ReferenceTracer.Rmse(golden, image);
+			float meanDiff = Math.abs(ReferenceTracer.Mean(golden) - ReferenceTracer.Mean(image));
+			assertTrue("seed "+seed+" rmse "+rmse, rmse < MAX_RMSE);
+			assertTrue("seed "+seed+" mean differs by "+meanDiff, meanDiff < MAX_MEAN_DIFF);
+		}
+	}
+
+	// the tolerance has to be tight enough to catch a kernel that changes the picture
+	@Test
+	public void FewerBouncesFail() throws IOException
+	{
+		ReferenceTracer rt = MakeTracer();
+		rt.bounces = 3;
+		float rmse = ReferenceTracer.Rmse(ReadPfm(GOLDEN), rt.Render(2, SAMPLES));
+		assertTrue("3 bounces passed with rmse "+rmse, rmse > MAX_RMSE);
+	}
+
+	static float[] ReadPfm(File f) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try
+		{
+			byte[] data = new byte[(int)f.length()];
+			in.readFully(data);
+			String header = "PF\n" + SIZE + " " + SIZE + "\n-1.0\n";
+			assertEquals("pfm size", header.length() + SIZE*SIZE*12, data.length);
+			float[] image = new float[SIZE*SIZE*3];
+			ByteBuffer.wrap(data, header.length(), SIZE*SIZE*12).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(image);
+			return image;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	// regenerates the golden image, only when the picture is meant to change
+	public static void main(String[] args) throws IOException
+	{
+		float[] image = MakeTracer().Render(GOLDEN_SEED, SAMPLES);
+		ByteBuffer b = ByteBuffer.allocate(image.length*4).order(ByteOrder.LITTLE_ENDIAN);
+		b.asFloatBuffer().put(image);
+		FileOutputStream out = new FileOutputStream(GOLDEN);
+		try
+		{
+			out.write(("PF\n" + SIZE + " " + SIZE + "\n-1.0\n").getBytes("US-ASCII"));
+			out.write(b.array());
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package ru.lewa_j.pathtracing;
+
+import static org.junit.Assert.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+// several ui-like writers publish through the mailbox while a gl-like reader polls it
+public class RenderParamsTest
+{
+	static final int WRITERS = 4;
+	static final int UPDATES = 100000;
+
+	@Test
+	public void ConcurrentWritersLoseNothing() throws InterruptedException
+	{
+		final AtomicReference<RenderParams> slot =
+			new AtomicReference<RenderParams>(new RenderParams(new float[]{0f,0f,-0.6f}, 0, false, 0, false));
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final String[] failure = new String[1];
+		Thread[] writers = new Thread[WRITERS*2];
+
+		for(int w=0;w<WRITERS;w++)
+		{
+			// read-modify-write, any lost update shows up in the final count
+			writers[w] = new Thread()
+			{
+				public void run()
+				{
+					Await(start);
+					for(int i=0;i<UPDATES;i++)
+					{
+						RenderParams.Publish(slot, new RenderParams.Update()
+						{
+							public RenderParams Apply(RenderParams p)
+							{
+								return p.WithTexSize(p.texSize+1);
+							}
+						});
+					}
+				}
+			};
+			// y is always -x, a torn light would break that
+			final int id = w;
+			writers[WRITERS+w] = new Thread()
+			{
+				public void run()
+				{
+					Await(start);
+					for(int i=0;i<UPDATES;i++)
+					{
+						final float x = id*UPDATES + i;
+						RenderParams.Publish(slot, new RenderParams.Update()
+						{
+							public RenderParams Apply(RenderParams p)
+							{
+								return p.WithLight(x, -x);
+							}
+						});
+					}
+				}
+			};
+		}
+		for(Thread t : writers)
+			t.start();
+
+		Thread reader = new Thread()
+		{
+			public void run()
+			{
+				Await(start);
+				RenderParams last = slot.get();
+				while(true)
+				{
+					// writers finished before this read, so it is the final value
+					boolean finished = done.get();
+					RenderParams p = slot.get();
+					if(p == last)
+					{
+						if(finished)
+							return;
+						continue;
+					}
+					if(p.light[1] != -p.light[0] || p.light[2] != -0.6f)
+						failure[0] = "torn light "+p.light[0]+" "+p.light[1]+" "+p.light[2];
+					else if(p.texSize < last.texSize)
+						failure[0] = "texSize went back from "+last.texSize+" to "+p.texSize;
+					if(failure[0] != null)
+						return;
+					last = p;
+				}
+			}
+		};
+		reader.start();
+		start.countDown();
+
+		for(Thread t : writers)
+			t.join();
+		done.set(true);
+		reader.join();
+
+		assertTrue(String.valueOf(failure[0]), failure[0] == null);
+		RenderParams p = slot.get();
+		assertEquals("texSize updates lost", WRITERS*UPDATES, p.texSize);
+
+		// the last light has to be one writer's final value, not an older one
+		boolean lastOfSomeWriter = false;
+		for(int w=0;w<WRITERS;w++)
+			lastOfSomeWriter |= p.light[0] == w*UPDATES + UPDATES-1;
+		assertTrue("final light "+p.light[0]+" is stale", lastOfSomeWriter);
+	}
+
+	static void Await(CountDownLatch l)
+	{
+		try
+		{
+			l.await();
+		}
+		catch(InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
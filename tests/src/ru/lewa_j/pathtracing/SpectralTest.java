@@ -0,0 +1,88 @@
+package ru.lewa_j.pathtracing;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+// spectral mode against rgb: grey scenes must agree, saturated colours are known not to
+public class SpectralTest
+{
+	static final float[] GREY = {0.75f,0.75f,0.75f};
+
+	// projection of the upsampled reflectance back to rgb, integrated over 380-720nm
+	static float[] RoundTrip(float[] rgb)
+	{
+		int n = 3400;
+		float[] out = new float[3];
+		for(int i=0;i<n;i+=4)
+		{
+			float[] lambda = new float[4];
+			for(int j=0;j<4;j++)
+				lambda[j] = 380f + 340f*(i+j+0.5f)/n;
+			float[] c = ReferenceTracer.SpectrumToRgb(lambda, ReferenceTracer.Reflectance(rgb, lambda));
+			for(int j=0;j<3;j++)
+				out[j] += c[j]*4f/n;
+		}
+		return out;
+	}
+
+	@Test
+	public void GreyReflectanceIsFlat()
+	{
+		float[] lambda = {380f, 500f, 590f, 719f};
+		assertArrayEquals("grey reflectance", new float[]{0.75f,0.75f,0.75f,0.75f}, ReferenceTracer.Reflectance(GREY, lambda), 1e-6f);
+		assertArrayEquals("grey round trip", GREY, RoundTrip(GREY), 1e-3f);
+	}
+
+	// the upsampling is not an inverse of the projection for saturated colours
+	@Test
+	public void SaturatedColoursShift()
+	{
+		assertArrayEquals("red wall round trip", new float[]{0.958f,0.343f,0.113f}, RoundTrip(new float[]{1.0f,0.3f,0.1f}), 2e-3f);
+	}
+
+	// grey walls, so every bounce reflects the same at all wavelengths
+	// the sin hash picking the hero wavelength is slightly uneven, which leaves ~0.002 between the two
+	// only holds for float or low spp accumulation: in the app's rgb8 texture a pass stops moving a
+	// pixel once its weight is below half a step, and the noisier spectral samples freeze further off,
+	// at 256 spp blue is 0.027 brighter in spectral mode
+	@Test
+	public void GreySceneMatchesRgb()
+	{
+		float[][] means = GreySceneMeans(false, 256);
+		assertArrayEquals("spectral vs rgb channel means", means[0], means[1], 0.005f);
+	}
+
+	// rgb8 like the texture, at the app's maxSamples
+	@Test
+	public void GreySceneMatchesRgbQuantized()
+	{
+		float[][] means = GreySceneMeans(true, 32);
+		assertArrayEquals("spectral vs rgb channel means", means[0], means[1], 0.005f);
+	}
+
+	// channel means of the rgb and the spectral render
+	static float[][] GreySceneMeans(boolean quantize, int samples)
+	{
+		float[][] means = new float[2][];
+		for(int m=0;m<2;m++)
+		{
+			ReferenceTracer rt = new ReferenceTracer();
+			rt.texSize = 32;
+			rt.SetCamera(new float[]{0f,0f,2.5f}, 1f);
+			rt.quantize = quantize;
+			rt.leftWall = GREY;
+			rt.rightWall = GREY;
+			rt.spectral = m == 1;
+			means[m] = ChannelMeans(rt.Render(3, samples));
+		}
+		return means;
+	}
+
+	static float[] ChannelMeans(float[] image)
+	{
+		float[] m = new float[3];
+		for(int i=0;i<image.length;i++)
+			m[i%3] += image[i]*3f/image.length;
+		return m;
+	}
+}
@@ -0,0 +1,62 @@
+package ru.lewa_j.pathtracing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// writes a synthetic image through WriteBand with every writer and reports throughput and heap
+// usage: java -Xmx256m ru.lewa_j.pathtracing.WriterBenchmark [size] [dir]
+public class WriterBenchmark
+{
+	public static void main(String[] args) throws IOException
+	{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+		File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+		System.out.println("format         time     MB/s   file MB   peak heap MB");
+		Run("exr", size, new File(dir, "bench.exr"), false);
+		Run("exr zip", size, new File(dir, "bench_zip.exr"), true);
+		Run("pfm", size, new File(dir, "bench.pfm"), false);
+	}
+
+	static void Run(String name, int size, File file, boolean zip) throws IOException
+	{
+		// one band as glReadPixels returns it, a gradient with some structure so zip has work to do
+		// same height as ImageReadback.BAND, which can't be used here without android
+		int band = 64;
+		ByteBuffer rgba = ByteBuffer.allocateDirect(size*band*4).order(ByteOrder.nativeOrder());
+		for(int r=0;r<band;r++)
+		{
+			for(int x=0;x<size;x++)
+			{
+				int i = (r*size+x)*4;
+				rgba.put(i, (byte)(x*7+r));
+				rgba.put(i+1, (byte)(r*3));
+				rgba.put(i+2, (byte)((x/13)^(r/5)));
+				rgba.put(i+3, (byte)255);
+			}
+		}
+
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		long base = rt.totalMemory()-rt.freeMemory();
+		long peak = base;
+
+		long start = System.nanoTime();
+		ImageFileWriter w = name.equals("pfm") ? new PfmWriter(file, size, size) : new ExrWriter(file, size, size, band, zip);
+		for(int y=0;y<size;y+=band)
+		{
+			w.WriteBand(y, Math.min(band, size-y), rgba);
+			peak = Math.max(peak, rt.totalMemory()-rt.freeMemory());
+		}
+		w.Close();
+		double seconds = (System.nanoTime()-start)/1e9;
+
+		// throughput counts the float rgb data, not the compressed file
+		double mb = (double)size*size*12/1e6;
+		System.out.printf("%-10s %7.2fs %8.1f %9.1f %14.1f%n",
+			name, seconds, mb/seconds, file.length()/1e6, (peak-base)/1e6);
+		file.delete();
+	}
+}